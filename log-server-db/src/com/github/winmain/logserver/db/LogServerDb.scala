@@ -1,6 +1,7 @@
 package com.github.winmain.logserver.db
 
-import java.nio.file.{Files, Path}
+import java.nio.file.{Files, Path, StandardCopyOption}
+import java.util.concurrent.{CountDownLatch, TimeUnit}
 
 import com.github.winmain.logserver.core.{LogServer, RecordId}
 import com.github.winmain.logserver.db.LogServerDb.{Info, JsRecord}
@@ -19,6 +20,8 @@ trait LogServerDb {
   def archive(): Unit
 
   def update(paths: Seq[Path]): Unit
+
+  def follow(updatesDir: Path, stop: CountDownLatch, pollIntervalMillis: Long = 1000L, maxBatchFiles: Int = 10): Unit
 }
 
 object LogServerDb {
@@ -93,6 +96,81 @@ object LogServerDb {
       }
     }
 
+    /**
+     * Непрерывно добавлять в базу новые файлы логов из каталога updatesDir, пока не будет
+     * отпущен stop. Хранилище остаётся открытым всё это время, и блокируется только
+     * на время добавления очередной порции файлов, поэтому записи можно читать через [[get()]]
+     * сразу после их добавления.
+     * Файл, который не удалось прочитать, переименовывается в *.failed, чтобы он не мешал
+     * добавлению следующих файлов.
+     */
+    override def follow(updatesDir: Path, stop: CountDownLatch, pollIntervalMillis: Long, maxBatchFiles: Int): Unit = {
+      val opts = new StorageOpts
+      // Разблокировать каталог в хуке нельзя: при остановке процесса текущая порция ещё дописывается
+      opts.addBigStorageUnlockHook = false
+      val big: AppendableBigStorage = new AppendableBigStorage(new RealDirectory(dbDir), opts)
+      big.suspend()
+      // Если другой процесс изменил хранилище, то закрывать его нельзя: состояние в памяти устарело
+      var stale = false
+      // Возвращает false, если каталог надолго заблокирован другим процессом (например, get
+      // восстанавливает хедеры). Тогда хранилище остаётся приостановленным до следующей попытки.
+      def resume(): Boolean =
+        try {
+          big.resume()
+          true
+        } catch {
+          case e: DirectoryLockedException =>
+            log.warn(e.getMessage + ", will retry later")
+            false
+          case e: Throwable =>
+            stale = true
+            throw e
+        }
+
+      def closeBig(): Unit = {
+        if (!stale && (big.locked || resume())) {
+          log.info("Closing BigStorage")
+          big.close()
+        }
+      }
+
+      try {
+        while (stop.getCount > 0) {
+          val paths: Vector[Path] = NewLogReader.listSourceFiles(updatesDir).take(maxBatchFiles)
+          if (paths.isEmpty || !resume()) stop.await(pollIntervalMillis, TimeUnit.MILLISECONDS)
+          else {
+            val logReader: NewLogReader = new NewLogReader(paths, log)
+            val readError: Option[Throwable] =
+              try {
+                new MemoryWiseLogWrapper(logReader).addRecords(big, log)
+                None
+              } catch {
+                case e: Exception if logReader.failedSource.isDefined => Some(e)
+                case e: Throwable =>
+                  try big.suspend()
+                  catch {case suspendError: Throwable => e.addSuppressed(suspendError)}
+                  throw e
+              }
+            big.suspend()
+            // Файлы удаляются только после контрольной точки. Если процесс упадёт раньше,
+            // то они будут прочитаны снова, а дубликаты отброшены.
+            logReader.processedSources.foreach(Files.delete)
+            for (e <- readError; failed <- logReader.failedSource) {
+              val movedPath: Path = failed.resolveSibling(failed.getFileName.toString + ".failed")
+              log.error("Cannot read " + failed + ", moving it to " + movedPath, e)
+              Files.move(failed, movedPath, StandardCopyOption.REPLACE_EXISTING)
+            }
+          }
+        }
+      } catch {
+        case e: Throwable =>
+          try closeBig()
+          catch {case closeError: Throwable => e.addSuppressed(closeError)}
+          throw e
+      }
+      closeBig()
+    }
+
     override def archive(): Unit = {
       val big: AppendableBigStorage = new AppendableBigStorage(new RealDirectory(dbDir))
       big.archive()
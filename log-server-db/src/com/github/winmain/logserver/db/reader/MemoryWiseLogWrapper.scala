@@ -15,10 +15,16 @@ class MemoryWiseLogWrapper(reader: LogReader, maxMemory: Long = 10000000L, buffe
     private val logQueue: SynchronousQueue[SourceLogRecord] = new SynchronousQueue(true)
     private val bufferQueue: LinkedBlockingQueue[Iterable[SourceLogRecord]] = new LinkedBlockingQueue(bufferQueueCapacity)
 
+    /** Ошибка чтения логов. Бросается из [[hasNext]] после того, как все прочитанные записи отданы. */
+    @volatile private var readError: Throwable = null
+
     val readThread: Thread = new Thread("MemoryWise:readThread") {
       override def run(): Unit = {
         try reader.readLogs(logQueue)
-        catch {case e: InterruptedException =>}
+        catch {
+          case e: InterruptedException =>
+          case e: Throwable => readError = e
+        }
         if (bufferThread.isAlive) logQueue.offer(new SourceLogRecordFinish, 100, TimeUnit.MILLISECONDS)
         //// println("ReadThread stopped") ////////
       }
@@ -31,15 +37,16 @@ class MemoryWiseLogWrapper(reader: LogReader, maxMemory: Long = 10000000L, buffe
           while (readThread.isAlive) {
             val records = mutable.Buffer[SourceLogRecord]()
             var occupiedMemory = 0L
+            // Если readThread завершился с ошибкой без маркера, то цикл закончится по readThread.isAlive
             while (readThread.isAlive && occupiedMemory < maxMemoryPerThread) {
               val record: SourceLogRecord = logQueue.poll(100, TimeUnit.MILLISECONDS)
-              if (record == null) {
-                if (!readThread.isAlive) sys.exit(-1) // exception thrown in readThread
-              } else if (record.isInstanceOf[SourceLogRecordFinish]) {
-                readThread.join()
-              } else {
-                occupiedMemory += record.occupiedMemory
-                records += record
+              if (record != null) {
+                if (record.isInstanceOf[SourceLogRecordFinish]) {
+                  readThread.join()
+                } else {
+                  occupiedMemory += record.occupiedMemory
+                  records += record
+                }
               }
             }
             //// print("Putting bufferQueue records:" + records.size)
@@ -61,6 +68,7 @@ class MemoryWiseLogWrapper(reader: LogReader, maxMemory: Long = 10000000L, buffe
 
     override def hasNext: Boolean = {
       checkNextValue()
+      if (nextValue.isEmpty && readError != null) throw new RuntimeException(readError.getMessage, readError)
       nextValue.nonEmpty
     }
     override def next(): Iterable[SourceLogRecord] = {
@@ -24,6 +24,9 @@ class NewLogReader(sources: Seq[Path], log: Logger) extends LogReader {
 
   val processedSources: mutable.Buffer[Path] = new ArrayBuffer[Path]()
 
+  /** Файл, на котором чтение прервалось с ошибкой. Файлы после него не читаются. */
+  @volatile var failedSource: Option[Path] = None
+
   class Record(val tableName: String,
                val id: RecordId,
                val timestamp: Long,
@@ -47,9 +50,7 @@ class NewLogReader(sources: Seq[Path], log: Logger) extends LogReader {
           .sorted
           .foreach(doReadLogs(_, result))
       case path =>
-        val name: String = path.getFileName.toString
-        if (name.endsWith(".saved") || name.endsWith(".saved.gz"))
-          doReadLogFromFile(path, result)
+        if (isSourceFile(path)) doReadLogFromFile(path, result)
     }
   }
 
@@ -110,6 +111,7 @@ class NewLogReader(sources: Seq[Path], log: Logger) extends LogReader {
     } catch {
       case _: InterruptedException => // just return
       case e: Throwable =>
+        failedSource = Some(logPath)
         throw new RuntimeException(
           "Error reading " + logPath + " at " + (if (fileChannel == null) "[unknown]"
                                                  else fileChannel.position()),
@@ -121,6 +123,19 @@ class NewLogReader(sources: Seq[Path], log: Logger) extends LogReader {
 
 object NewLogReader {
 
+  /** Это сохранённый файл логов, записанный [[com.github.winmain.logserver.client.LogWriterClient]]? */
+  def isSourceFile(path: Path): Boolean = {
+    val name: String = path.getFileName.toString
+    name.endsWith(".saved") || name.endsWith(".saved.gz")
+  }
+
+  /** Найти сохранённые файлы логов в каталоге, отсортированные по имени, т.е. по времени сохранения. */
+  def listSourceFiles(dir: Path): Vector[Path] = {
+    val dirStream = Files.newDirectoryStream(dir)
+    try dirStream.asScala.filter(path => isSourceFile(path) && Files.isRegularFile(path)).toVector.sorted
+    finally dirStream.close()
+  }
+
   implicit val dataInputStreamUInt29Reader: UInt29Reader[DataInputStream] = _.readByte()
 
   implicit class DataInputStreamOps(val in: DataInputStream) extends AnyVal {
@@ -42,7 +42,7 @@ abstract class BigStorage(dir: Directory,
 
     def recoverAndSaveHeaderStorage(reason: String): NewHeaderStorage = {
       val newHs: NewHeaderStorage = new RecoveryRecordStorage(info.recordReadStream, () => info.recordReadWrite, opts).toHeaderStorage
-      newHs.save(info.headerReadWrite, Some(info.hashReadWrite))
+      saveHeaderStorage(info, newHs, compact = true)
       if (newHs.getCount > 0) log.warn("Recovered headers for " + info + ", reason:" + reason)
       newHs
     }
@@ -51,6 +51,28 @@ abstract class BigStorage(dir: Directory,
   }
 
 
+  /**
+   * Сохранить хедеры хранилища. Если возможно, новые хедеры дописываются в дельта-файл,
+   * иначе базовые файлы хедеров и хешей перезаписываются целиком, а дельта удаляется.
+   * Дельта удаляется до перезаписи, чтобы при падении посередине хедеры не совпали
+   * с хранилищем записей и были восстановлены.
+   *
+   * Файлы сбрасываются на диск, поэтому после этого метода можно записывать
+   * [[RecordStorage.RSHead]], который на них ссылается.
+   *
+   * @param compact Перезаписать хедеры целиком, даже если можно записать дельту
+   * @param maxDeltaPercent Максимальный размер дельты, см. [[StorageOpts.headerDeltaMaxPercent]]
+   */
+  protected def saveHeaderStorage(info: StorageInfo, hs: HeaderStorage, compact: Boolean = false,
+                                  maxDeltaPercent: Int = opts.headerDeltaMaxPercent): Unit = {
+    if (!compact && hs.canSaveDelta(maxDeltaPercent)) hs.saveDelta(info.headerDeltaReadWrite)
+    else {
+      info.deleteHeaderDelta()
+      hs.save(info.headerReadWrite, Some(info.hashReadWrite))
+    }
+  }
+
+
   class ReadOnlyStorage(info: StorageInfo) extends Storage(info) {
     private var maybeEhs: Option[EssentialHeaderStorage] = None
     private var hsRef: SoftReference[HeaderStorage] = new SoftReference(null: HeaderStorage)
@@ -60,7 +82,7 @@ abstract class BigStorage(dir: Directory,
       maybeEhs = Some {
         val headerRS: ReadStream = info.headerReadStream
         if (headerRS.available)
-          checkAndRecoverHeaders(new EssentialHeaderStorageImpl(headerRS), "ReadOnlyStorage non-updated EssentialHeaderStorage")
+          checkAndRecoverHeaders(new EssentialHeaderStorageImpl(headerRS, info.headerDeltaReadStream), "ReadOnlyStorage non-updated EssentialHeaderStorage")
         else recoverAndSaveHeaderStorage("ReadOnlyStorage read EssentialHeaderStorage")
       }
       maybeEhs.get
@@ -70,7 +92,7 @@ abstract class BigStorage(dir: Directory,
       val headerRS: ReadStream = info.headerReadStream
       val hs: HeaderStorage =
         if (headerRS.available)
-          checkAndRecoverHeaders(new ExistedHeaderStorage(headerRS, info.hashReadStream), "ReadOnlyStorage non-updated HeaderStorage").asInstanceOf[HeaderStorage]
+          checkAndRecoverHeaders(new ExistedHeaderStorage(headerRS, info.hashReadStream, info.headerDeltaReadStream), "ReadOnlyStorage non-updated HeaderStorage").asInstanceOf[HeaderStorage]
         else recoverAndSaveHeaderStorage("ReadOnlyStorage updateHsRef")
       updateHs(hs)
       hs
@@ -122,15 +144,40 @@ abstract class BigStorage(dir: Directory,
       def doRecover(reason:String): Unit = {
         log.warn("Recovering headers for " + info + ", reason:" + reason)
         val newHs: NewHeaderStorage = rrs.toHeaderStorage
-        newHs.save(info.headerReadWrite, Some(info.hashReadWrite))
+        saveHeaderStorage(info, newHs, compact = true)
       }
 
-      if (recordMaybeLength.exists(_ != rrs.headTotalBytes))
-        doRecover("rrs.headTotalBytes:" + rrs.headTotalBytes + " != filesize:" + recordMaybeLength.get)
-      else {
+      /**
+       * Найти хедеры, сохранённые в последней контрольной точке. Они подходят, если совпадают
+       * с head хранилища записей, т.е. покрывают все записи до rrs.headTotalBytes.
+       */
+      def checkpointHs(): Option[HeaderStorage] = {
+        val headerRS: ReadStream = info.headerReadStream
+        if (!headerRS.available || recordMaybeLength.forall(_ < rrs.headTotalBytes)) None
+        else {
+          try {
+            Some(new ExistedHeaderStorage(headerRS, info.hashReadStream, info.headerDeltaReadStream)).filter {hs =>
+              hs.hasValidHashes && !hs.isReadOnly && hs.getCount == rrs.headRecordNum &&
+                hs.getMinTimestamp == rrs.headMinTimestamp && hs.getMaxTimestamp == rrs.headMaxTimestamp
+            }
+          } catch {case IoDataStreamException(e) => None}
+        }
+      }
+
+      if (recordMaybeLength.exists(_ != rrs.headTotalBytes)) {
+        val reason: String = "rrs.headTotalBytes:" + rrs.headTotalBytes + " != filesize:" + recordMaybeLength.get
+        checkpointHs() match {
+          case Some(hs) =>
+            log.warn("Recovering headers for " + info + " from checkpoint at " + rrs.headTotalBytes + ", reason:" + reason)
+            rrs.resumeHeaderStorage(hs)
+            if (hs.needSave) saveHeaderStorage(info, hs, maxDeltaPercent = opts.checkpointDeltaMaxPercent)
+          case None =>
+            doRecover(reason)
+        }
+      } else {
         val headerRS: ReadStream = info.headerReadStream
         if (headerRS.available) {
-          val ehs: EssentialHeaderStorageImpl = new EssentialHeaderStorageImpl(headerRS)
+          val ehs: EssentialHeaderStorageImpl = new EssentialHeaderStorageImpl(headerRS, info.headerDeltaReadStream)
           if (ehs.getCount != rrs.headRecordNum) doRecover("ehs.getCount:" + ehs.getCount + " != rrs.headRecordNum:" + rrs.headRecordNum)
           else if (ehs.getMaxTimestamp != rrs.headMaxTimestamp || ehs.getMinTimestamp != rrs.headMinTimestamp) doRecover("Timestamps not synced")
         } else {
@@ -227,7 +274,7 @@ class AppendableBigStorage(dir: Directory,
         val headerRS: ReadStream = info.headerReadStream
         val rrs: ReadOnceRecordStorage = new ReadOnceRecordStorage(info.recordReadStream, opts)
         if (headerRS.available) {
-          val existedHS: ExistedHeaderStorage = new ExistedHeaderStorage(headerRS, info.hashReadStream)
+          val existedHS: ExistedHeaderStorage = new ExistedHeaderStorage(headerRS, info.hashReadStream, info.headerDeltaReadStream)
           if (existedHS.getCount != rrs.headRecordNum) {
             _hs = recoverAndSaveHeaderStorage("Invalid count in AppendableStorage, got " + existedHS.getCount + ", must be " + rrs.headRecordNum) // Восстановить устаревшие хедеры
           } else _hs = existedHS // Актуальные хедеры
@@ -236,7 +283,7 @@ class AppendableBigStorage(dir: Directory,
       else _hs = new NewHeaderStorage
     }
 
-    if (_hs.needSave) _hs.save(info.headerReadWrite, Some(info.hashReadWrite))
+    if (_hs.needSave) saveHeaderStorage(info, _hs)
     if (ars.headNeedSave) ars.writeHead()
 
     require(!_hs.isReadOnly, "Cannot make AppendableStorage with readOnly HeaderStorage: " + info)
@@ -254,6 +301,7 @@ class AppendableBigStorage(dir: Directory,
         case Some(offset) =>
           val header: Header = record.makeHeader(offset)
           require(hs.add(header, allowDuplicates = true), "Cannot add header, duplicate found")
+          if (ars.headRecordNum % opts.checkpointRecordNum == 0) checkpoint()
           true
         case None =>
           hs.setReadOnly(true)
@@ -262,10 +310,23 @@ class AppendableBigStorage(dir: Directory,
     }
 
     /**
-     * Сжать файл хранилища записей
+     * Сделать контрольную точку: сбросить записи на диск, сохранить хедеры, и только потом
+     * записать head хранилища записей. Так head никогда не опережает сохранённые хедеры,
+     * и после падения восстановление продолжится с этой точки.
+     */
+    def checkpoint(): Unit = {
+      ars.sync()
+      if (hs.needSave) saveHeaderStorage(info, hs, maxDeltaPercent = opts.checkpointDeltaMaxPercent)
+      ars.writeHead()
+      ars.sync()
+    }
+
+    /**
+     * Сжать файл хранилища записей. Перед сжатием дельта хедеров объединяется с базовым файлом.
      */
     def archive(): StorageInfo = {
       if (!info.gzipped) {
+        if (hs.hasDelta) saveHeaderStorage(info, hs, compact = true)
         log.info("Gzipping " + info)
         dir.gzipInfo(info)
       } else
@@ -274,9 +335,7 @@ class AppendableBigStorage(dir: Directory,
 
     override def close(): StorageInfo = {
       ars.close()
-      if (hs.needSave) {
-        hs.save(info.headerReadWrite, Some(info.hashReadWrite))
-      }
+      if (hs.needSave) saveHeaderStorage(info, hs)
       // Сжать файл хранилища записей, если в него уже ничего нельзя записать
       if (hs.isReadOnly && !info.gzipped) archive()
       else info
@@ -332,6 +391,46 @@ class AppendableBigStorage(dir: Directory,
     }
   }
 
+  /**
+   * Сделать контрольную точку во всех открытых на запись хранилищах и разблокировать каталог,
+   * не закрывая это хранилище. Пока хранилище приостановлено, другие процессы могут читать
+   * из него записи. Перед добавлением новых записей нужно вызвать [[resume()]].
+   */
+  def suspend(): Unit = {
+    requireLocked()
+    storages.foreach {
+      case st: AppendableStorage => st.checkpoint()
+      case _ =>
+    }
+    unlock()
+  }
+
+  /**
+   * Снова заблокировать каталог после [[suspend()]]. Если за это время другой процесс добавил
+   * или сжал хранилища, либо изменил открытые на запись хранилища, то бросает exception:
+   * состояние в памяти уже неактуально, и хранилище нужно открыть заново.
+   */
+  def resume(): Unit = {
+    require(!locked, "Cannot resume not suspended BigStorage")
+    dir.lock(log, opts.openLockWaitTimeout)
+    val infoNames: Set[String] = dir.listInfoNames()
+    if (infoNames != storages.map(_.info.name).toSet) {
+      unlock()
+      sys.error("Storages in " + dir + " were changed while BigStorage was suspended, got " + infoNames.toVector.sorted.mkString(", "))
+    }
+    storages.foreach {
+      case st: AppendableStorage =>
+        val read: ReadStream = st.info.recordReadStream
+        val length: Option[Long] = read.maybeLength
+        read.close()
+        if (!length.contains(st.ars.headTotalBytes)) {
+          unlock()
+          sys.error("Storage " + st.info + " was modified while BigStorage was suspended, got length " + length + ", must be " + st.ars.headTotalBytes)
+        }
+      case _ =>
+    }
+  }
+
   /**
    * Заархивировать в gzip все несжатые хранилища.
    */
@@ -1,7 +1,7 @@
 package com.github.winmain.logserver.db.storage
 
 import java.nio.ByteBuffer
-import java.nio.file.{Files, Path}
+import java.nio.file.{FileAlreadyExistsException, Files, Path}
 import java.util.concurrent.TimeUnit
 
 import com.github.winmain.logserver.db.utils.{FileUtils, Str}
@@ -19,12 +19,22 @@ trait Directory {
   def addNewInfo(): StorageInfo
   def gzipInfo(info: StorageInfo): StorageInfo
 
+  /**
+   * Имена хранилищ, которые сейчас есть в каталоге. В отличие от [[infos]], которые читаются
+   * один раз, учитывает хранилища, добавленные или сжатые другими процессами.
+   */
+  def listInfoNames(): Set[String]
+
   def locked: Boolean
   def canLock: Boolean
+  /** Заблокировать каталог. Если он не освободится за время wait, то бросает [[DirectoryLockedException]]. */
   def lock(log: Logger, wait: (Int, TimeUnit)): Unit
   def unlock(): Unit
 }
 
+/** Каталог заблокирован другим процессом, и не был освобождён за время ожидания. */
+class DirectoryLockedException(msg: String) extends RuntimeException(msg)
+
 trait StorageInfo {
   def gzipped: Boolean
   def recordStoragePath: Path
@@ -32,10 +42,15 @@ trait StorageInfo {
   def recordReadStream: ReadStream
   def headerReadStream: ReadStream
   def hashReadStream: ReadStream
+  def headerDeltaReadStream: ReadStream
 
   def recordReadWrite: ReadWrite
   def headerReadWrite: ReadWrite
   def hashReadWrite: ReadWrite
+  def headerDeltaReadWrite: ReadWrite
+
+  /** Удалить дельту хедеров. Вызывается перед полной перезаписью хедеров. */
+  def deleteHeaderDelta(): Unit
 
   // Этот метод нужно переопределить, потому что он используется для составления строки в логах
   def toString: String
@@ -52,6 +67,7 @@ class FakeDirectory(bufferSize: Int = 4096) extends Directory {
     info
   }
   override def gzipInfo(info: StorageInfo): StorageInfo = info
+  override def listInfoNames(): Set[String] = infos.map(_.name).toSet
 
   var locked: Boolean = false
   override def canLock: Boolean = !locked
@@ -71,15 +87,21 @@ class FakeStorageInfo(idx: Int, bufferSize: Int = 4096) extends StorageInfo {
   headerBuf.limit(0)
   val hashBuf: ByteBuffer = ByteBuffer.allocate(bufferSize)
   hashBuf.limit(0)
+  val headerDeltaBuf: ByteBuffer = ByteBuffer.allocate(bufferSize)
+  headerDeltaBuf.limit(0)
 
   override def recordStoragePath: Path = sys.error("Inapplicable")
   override def recordReadStream: ReadStream = recordReadWrite
   override def headerReadStream: ReadStream = headerReadWrite
   override def hashReadStream: ReadStream = hashReadWrite
+  override def headerDeltaReadStream: ReadStream = headerDeltaReadWrite
 
   override def recordReadWrite: ReadWrite = new ReadWriteBuffer(recordBuf)
   override def headerReadWrite: ReadWrite = new ReadWriteBuffer(headerBuf)
   override def hashReadWrite: ReadWrite = new ReadWriteBuffer(hashBuf)
+  override def headerDeltaReadWrite: ReadWrite = new ReadWriteBuffer(headerDeltaBuf)
+
+  override def deleteHeaderDelta(): Unit = headerDeltaBuf.limit(0)
 
   override def toString: String = "FakeStorageInfo[idx:" + idx + ", buf:" + bufferSize + "]"
   override def name: String = idx.toString
@@ -92,7 +114,7 @@ class RealDirectory(basePath: Path) extends Directory {
 
   Files.createDirectories(basePath)
 
-  private val recordStoragePaths: mutable.Buffer[Path] = {
+  private def listRecordStoragePaths(): mutable.Buffer[Path] = {
     val dirStream = Files.newDirectoryStream(basePath)
     try dirStream.iterator().asScala.filter {path =>
       val s: String = path.toString
@@ -101,6 +123,8 @@ class RealDirectory(basePath: Path) extends Directory {
     finally dirStream.close()
   }
 
+  private val recordStoragePaths: mutable.Buffer[Path] = listRecordStoragePaths()
+
   private var lastStorageIndex: Int = {
     if (recordStoragePaths.isEmpty) 0
     else {
@@ -137,30 +161,40 @@ class RealDirectory(basePath: Path) extends Directory {
     newInfo
   }
 
+  override def listInfoNames(): Set[String] = listRecordStoragePaths().map(_.getFileName.toString).toSet
+
   private val lockPath = basePath.resolve("db.lock")
   private var thisLock = false
 
   override def locked: Boolean = thisLock
   override def canLock: Boolean = !Files.exists(lockPath)
-  override def lock(log: Logger, wait: (Int, TimeUnit)): Unit = RealDirectory.lockObj.synchronized {
+  override def lock(log: Logger, wait: (Int, TimeUnit)): Unit = {
     require(!locked, "Cannot lock already self-locked storage " + this)
-    var waitMillis = wait._2.toMillis(wait._1)
+    val deadline: Long = System.currentTimeMillis() + wait._2.toMillis(wait._1)
     var firstMessageShown = false
-    while (!canLock) {
-      if (waitMillis == 0) {
-        if (firstMessageShown) sys.error("Cannot acquire lock for " + this + " in " + wait._1 + " " + wait._2.toString)
-        else sys.error("Cannot acquire lock for " + this)
+    // Ожидание идёт вне lockObj, чтобы не мешать unlock() других хранилищ в этом же процессе
+    while (!tryLock()) {
+      if (System.currentTimeMillis() >= deadline) {
+        if (firstMessageShown) throw new DirectoryLockedException("Cannot acquire lock for " + this + " in " + wait._1 + " " + wait._2.toString)
+        else throw new DirectoryLockedException("Cannot acquire lock for " + this)
       }
       if (!firstMessageShown) {
         log.info("Waiting " + wait._1 + " " + wait._2.toString + " to unlock " + this)
         firstMessageShown = true
       }
-      val toSleep = math.max(500, waitMillis)
-      Thread.sleep(toSleep)
-      waitMillis -= toSleep
+      Thread.sleep(RealDirectory.LockRetryMillis)
+    }
+  }
+
+  /** Атомарно создать файл блокировки. Возвращает false, если он уже существует. */
+  private def tryLock(): Boolean = RealDirectory.lockObj.synchronized {
+    try {
+      Files.createFile(lockPath)
+      thisLock = true
+      true
+    } catch {
+      case _: FileAlreadyExistsException => false
     }
-    Files.createFile(lockPath)
-    thisLock = true
   }
   override def unlock(): Unit = RealDirectory.lockObj.synchronized {
     if (thisLock) {
@@ -174,6 +208,7 @@ class RealDirectory(basePath: Path) extends Directory {
 
 object RealDirectory {
   private[storage] val lockObj = new Object
+  private val LockRetryMillis = 100L
 }
 
 class RealStorageInfoRW(gotRecordSP: Path, bufferSize: Int = 4096) extends StorageInfo {
@@ -183,6 +218,7 @@ class RealStorageInfoRW(gotRecordSP: Path, bufferSize: Int = 4096) extends Stora
   private val recordSP: Path = makeSP(".record")
   private val headerSP: Path = makeSP(".header")
   private val hashSP: Path = makeSP(".hash")
+  private val headerDeltaSP: Path = makeSP(".header-delta")
 
   override def gzipped: Boolean = false
   // будет true только для сжатых gzip'ом файлов хранилищ
@@ -191,10 +227,14 @@ class RealStorageInfoRW(gotRecordSP: Path, bufferSize: Int = 4096) extends Stora
   override def recordReadStream: ReadStream = ReadDataStream.fromPath(recordSP, bufferSize)
   override def headerReadStream: ReadStream = ReadDataStream.fromPath(headerSP, bufferSize)
   override def hashReadStream: ReadStream = ReadDataStream.fromPath(hashSP, bufferSize)
+  override def headerDeltaReadStream: ReadStream = ReadDataStream.fromPath(headerDeltaSP, bufferSize)
 
   override def recordReadWrite: ReadWrite = new ReadWriteChannel(recordSP)
   override def headerReadWrite: ReadWrite = new ReadWriteChannel(headerSP)
   override def hashReadWrite: ReadWrite = new ReadWriteChannel(hashSP)
+  override def headerDeltaReadWrite: ReadWrite = new ReadWriteChannel(headerDeltaSP)
+
+  override def deleteHeaderDelta(): Unit = Files.deleteIfExists(headerDeltaSP)
 
   override def toString: String = "RealStorageInfoRW[" + gotRecordSP + "]"
   override def name: String = gotRecordSP.getFileName.toString
@@ -207,6 +247,7 @@ class RealStorageInfoGzip(gotRecordSP: Path, bufferSize: Int = 4096) extends Sto
   private val recordGzipSP: Path = makeSP(".record.gz")
   private val headerSP: Path = makeSP(".header")
   private val hashSP: Path = makeSP(".hash")
+  private val headerDeltaSP: Path = makeSP(".header-delta")
 
   override def gzipped: Boolean = true
   override def recordStoragePath: Path = recordGzipSP
@@ -214,10 +255,14 @@ class RealStorageInfoGzip(gotRecordSP: Path, bufferSize: Int = 4096) extends Sto
   override def recordReadStream: ReadStream = ReadDataStream.fromPath(recordGzipSP, bufferSize)
   override def headerReadStream: ReadStream = ReadDataStream.fromPath(headerSP, bufferSize)
   override def hashReadStream: ReadStream = ReadDataStream.fromPath(hashSP, bufferSize)
+  override def headerDeltaReadStream: ReadStream = ReadDataStream.fromPath(headerDeltaSP, bufferSize)
 
   override def recordReadWrite: ReadWrite = sys.error("Cannot make ReadWrite for gzipped file:" + recordGzipSP)
   override def headerReadWrite: ReadWrite = new ReadWriteChannel(headerSP)
   override def hashReadWrite: ReadWrite = new ReadWriteChannel(hashSP)
+  override def headerDeltaReadWrite: ReadWrite = new ReadWriteChannel(headerDeltaSP)
+
+  override def deleteHeaderDelta(): Unit = Files.deleteIfExists(headerDeltaSP)
 
   override def toString: String = "RealStorageInfoGzip[" + gotRecordSP + "]"
   override def name: String = gotRecordSP.getFileName.toString
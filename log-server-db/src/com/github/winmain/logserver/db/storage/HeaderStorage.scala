@@ -1,5 +1,6 @@
 package com.github.winmain.logserver.db.storage
 
+import java.io.IOException
 import java.util.function.LongConsumer
 
 import com.github.winmain.logserver.core.{LogServer, RecordId}
@@ -36,6 +37,11 @@ abstract class HeaderStorage extends EssentialHeaderStorage {
 
   protected var _needSave: Boolean = false
 
+  /** Количество имён таблиц, уже сохранённых в базовом файле или в дельте. */
+  protected var savedTableCount: Int = 0
+  /** Размер дельта-файла хедеров, либо 0, если дельты нет. См. [[HeaderDeltaHead]] */
+  protected var deltaBytes: Long = 0L
+
   /**
    * Хранилище только для чтения? Флаг действует как на хранилище заголовков, так и на хранилище записей.
    * Он устанавливается, когда хранилище записей заархивировано, либо имеет слишком большой размер,
@@ -84,10 +90,29 @@ abstract class HeaderStorage extends EssentialHeaderStorage {
   /** Новые добавленные значения table+id, hash. */
   protected val newTableIdHashes: HashLongSet = HashLongSets.newUpdatableSet()
 
+  /**
+   * Значения table+id+offset, добавленные после последнего сохранения.
+   * В отличие от [[newTableIdOffsets]], сюда не попадают значения, прочитанные из дельты.
+   * Заполняется, только если есть базовый файл, см. [[tracksUnsaved]].
+   */
+  protected val unsavedTableIdOffsets: mutable.ArrayBuilder.ofLong = new mutable.ArrayBuilder.ofLong
+  /** Значения table+id+hash, добавленные после последнего сохранения. */
+  protected val unsavedTableIdHashes: mutable.ArrayBuilder.ofLong = new mutable.ArrayBuilder.ofLong
+
+  /**
+   * Нужно ли запоминать новые значения для [[saveDelta()]]? Без базового файла дельту записать
+   * нельзя (см. [[canSaveDelta()]]), поэтому при восстановлении и заполнении нового хранилища
+   * значения не копируются. Базовый файл появляется только после [[save()]], который очищает
+   * эти буферы, поэтому они всегда содержат все значения после последнего сохранения.
+   */
+  private def tracksUnsaved: Boolean = tableIdOffsets.length > 0
+
   /**
    * Найти значение table+id, по сути это простейшая упаковка tableId и id в одно Int-значение.
    */
-  def calcTablePlusId(tableId: Int, id: RecordId): Int = Integer.reverse(tableId) ^ id.hash
+  def calcTablePlusId(tableId: Int, id: RecordId): Int = calcTablePlusId(tableId, id.hash)
+
+  def calcTablePlusId(tableId: Int, idHash: Int): Int = Integer.reverse(tableId) ^ idHash
 
   /**
    * Есть ли запись с таким хешем?
@@ -168,23 +193,44 @@ abstract class HeaderStorage extends EssentialHeaderStorage {
   def add(header: Header, allowDuplicates: Boolean = false): Boolean = {
     require(!readOnly, "Cannot add header to readOnly HeaderStorage")
     val tableId: Int = tableNames.getOrAdd(header.tableName)
-    val tablePlusId = calcTablePlusId(tableId, header.id)
-    if (!allowDuplicates && contains(tablePlusId, header.hash)) false
+    add(calcTablePlusId(tableId, header.id), header.hash, header.offset, header.timestamp, allowDuplicates)
+  }
+
+  /**
+   * Добавить хедер текущей записи курсора, не создавая объектов [[Header]] и [[RecordId]].
+   * Курсор должен использовать [[tableNames]] этого хранилища, чтобы id таблиц совпадали.
+   */
+  def add(cursor: RecordCursor, allowDuplicates: Boolean): Boolean = {
+    require(!readOnly, "Cannot add header to readOnly HeaderStorage")
+    require(cursor.tableNames eq tableNames, "RecordCursor must use tableNames of this HeaderStorage")
+    add(calcTablePlusId(cursor.tableId, cursor.idHash), cursor.calcHash, cursor.offset.toInt, cursor.timestamp, allowDuplicates)
+  }
+
+  private def add(tablePlusId: Int, hash: Int, offset: Int, timestamp: Long, allowDuplicates: Boolean): Boolean = {
+    if (!allowDuplicates && contains(tablePlusId, hash)) false
     else {
-      val tableIdHash: Long = calcTableIdHash(tablePlusId, header.hash)
-      if (newTableIdHashes.add(tableIdHash)) hashCount += 1
-      newTableIdOffsets.put(tablePlusId,
-        newTableIdOffsets.get(tablePlusId) match {
-          case null => List(header.offset)
-          case offsets => header.offset :: offsets
-        })
-      if (header.timestamp < minTimestamp) minTimestamp = header.timestamp
-      if (header.timestamp > maxTimestamp) maxTimestamp = header.timestamp
+      val tableIdHash: Long = calcTableIdHash(tablePlusId, hash)
+      val tracks: Boolean = tracksUnsaved
+      if (newTableIdHashes.add(tableIdHash)) {
+        hashCount += 1
+        if (tracks) unsavedTableIdHashes += tableIdHash
+      }
+      addNewOffset(tablePlusId, offset)
+      if (tracks) unsavedTableIdOffsets += calcTableIdOffset(tablePlusId, offset)
+      if (timestamp < minTimestamp) minTimestamp = timestamp
+      if (timestamp > maxTimestamp) maxTimestamp = timestamp
       count += 1
       true
     }
   }
 
+  private def addNewOffset(tablePlusId: Int, offset: Int): Unit =
+    newTableIdOffsets.put(tablePlusId,
+      newTableIdOffsets.get(tablePlusId) match {
+        case null => List(offset)
+        case offsets => offset :: offsets
+      })
+
   /**
    * Объединить накопленные оффсеты [[newTableIdOffsets]] со старыми [[tableIdOffsets]],
    * получив новый сортированный массив всех оффсетов.
@@ -202,6 +248,7 @@ abstract class HeaderStorage extends EssentialHeaderStorage {
     result.sort()
     tableIdOffsets = result
     newTableIdOffsets.clear()
+    unsavedTableIdOffsets.clear()
   }
 
   /**
@@ -224,6 +271,7 @@ abstract class HeaderStorage extends EssentialHeaderStorage {
     result.sort()
     tableIdHashes = result
     newTableIdHashes.clear()
+    unsavedTableIdHashes.clear()
   }
 
   def needSave: Boolean = _needSave || count != savedCount
@@ -266,14 +314,147 @@ abstract class HeaderStorage extends EssentialHeaderStorage {
     // write tableIdOffset array
     writeLongByteBuffer(rw, tableIdOffsets)
 
+    rw.sync()
     rw.close()
     savedCount = count
+    savedTableCount = tableNames.values.length
+    deltaBytes = 0L
     _needSave = false
 
     // write hashes
     maybeHashesRw.foreach(saveHashes)
   }
 
+  /** Есть ли у этого хранилища хедеры в дельта-файле, которые ещё не объединены с базовым файлом? */
+  def hasDelta: Boolean = deltaBytes > 0
+
+  /**
+   * Можно ли сохранить новые хедеры через [[saveDelta()]], не перезаписывая базовый файл?
+   * Дельту нельзя писать, если хеши невалидны, если хранилище стало readOnly (такое хранилище
+   * будет заархивировано, поэтому его нужно сжать), либо если дельта стала слишком большой
+   * относительно базового файла.
+   *
+   * @param maxDeltaPercent Максимальный размер дельты в процентах от количества хедеров в базовом файле
+   */
+  def canSaveDelta(maxDeltaPercent: Int): Boolean = {
+    val baseCount: Int = tableIdOffsets.length
+    hasValidHashes && !readOnly && !_needSave && baseCount > 0 &&
+      (count - baseCount).toLong * 100 <= baseCount.toLong * maxDeltaPercent
+  }
+
+  /**
+   * Дописать хедеры и хеши, добавленные после последнего сохранения, в дельта-файл.
+   * В отличие от [[save()]], этот метод не сортирует и не перезаписывает базовые файлы хедеров
+   * и хешей, поэтому его стоимость зависит только от количества новых записей.
+   * Дельта привязана к базовому файлу через его количество хедеров и хешей, поэтому после
+   * вызова [[save()]] старая дельта становится недействительной.
+   *
+   * @param rw Дельта-файл хедеров
+   */
+  def saveDelta(rw: ReadWrite): Unit = {
+    require(hasValidHashes, "Cannot save delta with inconsistent hashes")
+    require(!readOnly && !_needSave, "Cannot save delta for readOnly HeaderStorage")
+    require(tracksUnsaved, "Cannot save delta without base headers")
+    val offsets: Array[Long] = unsavedTableIdOffsets.result()
+    val hashes: Array[Long] = unsavedTableIdHashes.result()
+
+    if (deltaBytes == 0L) {
+      // Новая дельта: резервируем место под шапку, она будет перезаписана в конце
+      rw.seek(0)
+      makeDeltaHead().write(rw)
+    } else rw.seek(deltaBytes)
+
+    // write new TableNames
+    val values: ArrayBuffer[String] = tableNames.values
+    rw.putInt(values.length - savedTableCount)
+    for (i <- savedTableCount until values.length) writeBytes(rw, values(i).getBytes(LogServer.Charset))
+
+    // write new tableIdOffsets & tableIdHashes
+    rw.putInt(offsets.length)
+    writeLongByteBuffer(rw, toLongByteBuffer(offsets))
+    rw.putInt(hashes.length)
+    writeLongByteBuffer(rw, toLongByteBuffer(hashes))
+
+    // Шапка пишется после данных, поэтому недописанный хвост дельты будет просто проигнорирован.
+    // Данные сбрасываются на диск до шапки, иначе после сбоя питания на диске может оказаться
+    // новая шапка без данных, и EssentialHeaderStorageImpl поверит её количеству хедеров.
+    deltaBytes = rw.pos
+    rw.truncate(deltaBytes)
+    rw.sync()
+    rw.seek(0)
+    makeDeltaHead().write(rw)
+    rw.sync()
+    rw.close()
+
+    unsavedTableIdOffsets.clear()
+    unsavedTableIdHashes.clear()
+    savedTableCount = values.length
+    savedCount = count
+  }
+
+  private def makeDeltaHead(): HeaderDeltaHead =
+    HeaderDeltaHead(
+      baseCount = tableIdOffsets.length,
+      baseHashCount = tableIdHashes.length,
+      totalBytes = deltaBytes,
+      minTimestamp = minTimestamp,
+      maxTimestamp = maxTimestamp,
+      count = count,
+      hashCount = hashCount)
+
+  private def toLongByteBuffer(values: Array[Long]): LongByteBuffer = {
+    val lbb: LongByteBuffer = new LongByteBuffer(values.length)
+    lbb.lb.put(values)
+    lbb
+  }
+
+  /**
+   * Прочитать дельту хедеров и добавить её в [[newTableIdOffsets]] и [[newTableIdHashes]].
+   * Дельта применяется целиком, только если она относится к текущему базовому файлу и
+   * полностью прочитана. Иначе она игнорируется, и количество хедеров не сойдётся с хранилищем
+   * записей, что приведёт к восстановлению хедеров.
+   */
+  protected def loadDelta(read: ReadStream): Unit = {
+    try {
+      HeaderDeltaHead.read(read, count, hashCount).foreach {head =>
+        val names = new ArrayBuffer[String]()
+        val offsetChunks = new ArrayBuffer[LongByteBuffer]()
+        val hashChunks = new ArrayBuffer[LongByteBuffer]()
+        def readChunk(): LongByteBuffer = {
+          val size: Int = read.getInt
+          if (size < 0 || size.toLong * 8 > head.totalBytes - read.pos) throw new IOException("Invalid header delta chunk size: " + size)
+          readLongByteBuffer(read, size)
+        }
+        while (read.pos < head.totalBytes) {
+          val tableCount: Int = read.getInt
+          for (_ <- 0 until tableCount) names += new String(readBytes(read), LogServer.Charset)
+          offsetChunks += readChunk()
+          hashChunks += readChunk()
+        }
+        if (read.pos == head.totalBytes &&
+          count + offsetChunks.map(_.length).sum == head.count &&
+          hashCount + hashChunks.map(_.length).sum == head.hashCount) {
+          names.foreach(tableNames.getOrAdd)
+          for (chunk <- offsetChunks; i <- 0 until chunk.length) {
+            val v: Long = chunk(i)
+            addNewOffset((v >> 32).toInt, (v & 0xffffffff).toInt)
+          }
+          for (chunk <- hashChunks; i <- 0 until chunk.length) newTableIdHashes.add(chunk(i))
+          count = head.count
+          hashCount = head.hashCount
+          minTimestamp = head.minTimestamp
+          maxTimestamp = head.maxTimestamp
+          savedCount = count
+          savedTableCount = tableNames.values.length
+          deltaBytes = head.totalBytes
+        }
+      }
+    } catch {
+      case IoDataStreamException(e) => // Повреждённая дельта игнорируется
+    }
+    read.close()
+  }
+
   /**
    * Сохранить хеши. Этот метод вызывает [[mergeTableIdHashes()]], что приводит к смене данных
    * внутри этого объекта.
@@ -284,6 +465,7 @@ abstract class HeaderStorage extends EssentialHeaderStorage {
     require(hasValidHashes, "Cannot save inconsistent hashes. Hashes must be properly initialized before saving it.")
     rw.putInt(tableIdHashes.length)
     writeLongByteBuffer(rw, tableIdHashes)
+    rw.sync()
     rw.close()
   }
 }
@@ -295,7 +477,14 @@ class NewHeaderStorage extends HeaderStorage {
 }
 
 
-class ExistedHeaderStorage(read: ReadStream, readHashes: ReadStream) extends HeaderStorage {
+/**
+ * Хранилище хедеров, прочитанное из файлов.
+ *
+ * @param read Базовый файл хедеров
+ * @param readHashes Базовый файл хешей
+ * @param readDelta Дельта-файл хедеров, дописанный через [[HeaderStorage.saveDelta()]]
+ */
+class ExistedHeaderStorage(read: ReadStream, readHashes: ReadStream, readDelta: ReadStream = EmptyDataStream) extends HeaderStorage {
   // read & check versions
   read.getInt match {
     case 1 => // ok
@@ -322,6 +511,7 @@ class ExistedHeaderStorage(read: ReadStream, readHashes: ReadStream) extends Hea
     }
     names
   }
+  savedTableCount = tableNames.values.length
 
   // read tableIdOffset array
   tableIdOffsets = readLongByteBuffer(read, count)
@@ -338,15 +528,17 @@ class ExistedHeaderStorage(read: ReadStream, readHashes: ReadStream) extends Hea
   }
   readHashes.close()
 
+  loadDelta(readDelta)
+
   override def hasValidHashes: Boolean = validHashes
 }
 
 
 /**
  * Легковесная реализация [[EssentialHeaderStorage]], которая читает только шапку хедеров,
- * но не сами хедеры.
+ * но не сами хедеры. Если есть актуальная дельта, то значения берутся из её шапки.
  */
-class EssentialHeaderStorageImpl(read: ReadStream) extends EssentialHeaderStorage {
+class EssentialHeaderStorageImpl(read: ReadStream, readDelta: ReadStream = EmptyDataStream) extends EssentialHeaderStorage {
   // read & check versions
   read.getInt match {
     case 1 => // ok
@@ -355,13 +547,86 @@ class EssentialHeaderStorageImpl(read: ReadStream) extends EssentialHeaderStorag
   // read readOnly flag
   override val isReadOnly: Boolean = read.getByte != 0
   // read timestamps
-  override val getMinTimestamp: Long = read.getLong
-  override val getMaxTimestamp: Long = read.getLong
-  require(getMinTimestamp <= getMaxTimestamp, "Invalid timestamps read")
+  private val baseMinTimestamp: Long = read.getLong
+  private val baseMaxTimestamp: Long = read.getLong
+  require(baseMinTimestamp <= baseMaxTimestamp, "Invalid timestamps read")
   // read counts
-  override val getCount: Int = read.getInt
-  override val getHashCount: Int = read.getInt
+  private val baseCount: Int = read.getInt
+  private val baseHashCount: Int = read.getInt
   read.close()
+
+  private val deltaHead: Option[HeaderDeltaHead] =
+    try HeaderDeltaHead.read(readDelta, baseCount, baseHashCount)
+    catch {case IoDataStreamException(e) => None}
+    finally readDelta.close()
+
+  override val getMinTimestamp: Long = deltaHead.fold(baseMinTimestamp)(_.minTimestamp)
+  override val getMaxTimestamp: Long = deltaHead.fold(baseMaxTimestamp)(_.maxTimestamp)
+  override val getCount: Int = deltaHead.fold(baseCount)(_.count)
+  override val getHashCount: Int = deltaHead.fold(baseHashCount)(_.hashCount)
+}
+
+
+/**
+ * Шапка дельта-файла хедеров. Находится в начале дельта-файла, за ней следуют порции новых
+ * хедеров, дописанные через [[HeaderStorage.saveDelta()]].
+ * Каждая порция состоит из новых имён таблиц, значений table+id+offset и table+id+hash.
+ *
+ * @param baseCount Количество хедеров в базовом файле, к которому относится дельта
+ * @param baseHashCount Количество хешей в базовом файле, к которому относится дельта
+ * @param totalBytes Размер дельты вместе с шапкой. Всё, что за ним, считается недописанным
+ * @param count Общее количество хедеров с учётом дельты
+ * @param hashCount Общее количество хешей с учётом дельты
+ */
+case class HeaderDeltaHead(baseCount: Int,
+                           baseHashCount: Int,
+                           totalBytes: Long,
+                           minTimestamp: Long,
+                           maxTimestamp: Long,
+                           count: Int,
+                           hashCount: Int) {
+  def write(rw: ReadWrite): Unit = {
+    rw.putInt(HeaderDeltaHead.Version)
+    rw.putInt(baseCount)
+    rw.putInt(baseHashCount)
+    rw.putLong(totalBytes)
+    rw.putLong(minTimestamp)
+    rw.putLong(maxTimestamp)
+    rw.putInt(count)
+    rw.putInt(hashCount)
+  }
+}
+
+object HeaderDeltaHead {
+  val Version: Int = 1
+  val Size: Int = 4 + 4 + 4 + 8 + 8 + 8 + 4 + 4
+
+  /**
+   * Прочитать шапку дельты. Возвращает None, если дельты нет, если она относится
+   * к другому базовому файлу, либо если файл короче, чем записано в шапке (недописанный хвост).
+   * Проверка длины нужна, чтобы [[EssentialHeaderStorageImpl]], который не читает тело дельты,
+   * сходился по количеству хедеров с [[ExistedHeaderStorage]].
+   */
+  def read(read: ReadStream, baseCount: Int, baseHashCount: Int): Option[HeaderDeltaHead] = {
+    if (!read.available) None
+    else {
+      read.getInt match {
+        case Version => // ok
+        case invalidVersion => throw new IOException("Invalid header delta version: " + invalidVersion)
+      }
+      val head = HeaderDeltaHead(
+        baseCount = read.getInt,
+        baseHashCount = read.getInt,
+        totalBytes = read.getLong,
+        minTimestamp = read.getLong,
+        maxTimestamp = read.getLong,
+        count = read.getInt,
+        hashCount = read.getInt)
+      if (head.baseCount == baseCount && head.baseHashCount == baseHashCount && head.totalBytes >= Size &&
+        read.maybeLength.forall(_ >= head.totalBytes)) Some(head)
+      else None
+    }
+  }
 }
 
 
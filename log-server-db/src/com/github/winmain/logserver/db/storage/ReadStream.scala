@@ -29,6 +29,12 @@ trait ReadStream {
   def getLong: Long
   def get(dst: Array[Byte]): Unit
   def get(dst: ByteBuffer): Unit
+
+  /**
+   * Прочитать в dst столько байт, сколько доступно, но не больше dst.remaining().
+   * Возвращает количество прочитанных байт, либо -1, если поток закончился.
+   */
+  def readAvailable(dst: ByteBuffer): Int
 }
 
 object ReadStream {
@@ -85,6 +91,14 @@ class ReadDataStream(s: DataInputStream, val maybeLength: Option[Long])
       dst.remaining()
     )
   }
+  override def readAvailable(dst: ByteBuffer): Int = {
+    val n = s.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining())
+    if (n > 0) {
+      p += n
+      dst.position(dst.position() + n)
+    }
+    n
+  }
 }
 
 object EmptyDataStream extends ReadStream {
@@ -100,6 +114,7 @@ object EmptyDataStream extends ReadStream {
   override def getLong: Long = sys.error("Stream is empty")
   override def get(dst: Array[Byte]): Unit = sys.error("Stream is empty")
   override def get(dst: ByteBuffer): Unit = sys.error("Stream is empty")
+  override def readAvailable(dst: ByteBuffer): Int = -1
 }
 
 object ReadDataStream {
@@ -143,6 +158,8 @@ trait ReadWrite extends ReadStream {
   def length: Long
   def filePath: String
   def truncate(n: Long): Unit
+  /** Сбросить записанные данные на диск */
+  def sync(): Unit
 
   def putByte(v: Byte): Unit
   def putShort(v: Short): Unit
@@ -185,6 +202,7 @@ class ReadWriteChannel(path: Path,
   override def length: Long = channel.size()
   override def filePath: String = path.toString
   override def truncate(n: Long): Unit = channel.truncate(n)
+  override def sync(): Unit = channel.force(false)
   override def putByte(v: Byte): Unit = channel.write(ByteBuffer.wrap(Array(v)))
   override def putShort(v: Short): Unit = write(2, _.putShort(v))
   override def putInt(v: Int): Unit = write(4, _.putInt(v))
@@ -203,6 +221,7 @@ class ReadWriteChannel(path: Path,
   override def getLong: Long = read(8).getLong
   override def get(dst: Array[Byte]): Unit = channel.read(ByteBuffer.wrap(dst))
   override def get(dst: ByteBuffer): Unit = channel.read(dst)
+  override def readAvailable(dst: ByteBuffer): Int = channel.read(dst)
 
   private def read(capacity: Int): ByteBuffer = {
     val buf = ByteBuffer.allocate(capacity)
@@ -232,6 +251,7 @@ class ReadWriteFile(file: File, mode: String = "rw") extends ReadWrite {
   override def length: Long = raf.length()
   override def filePath: String = file.getPath
   override def truncate(n: Long): Unit = raf.getChannel.truncate(n)
+  override def sync(): Unit = raf.getFD.sync()
 
   override def getByte: Byte = raf.readByte()
   override def getShort: Short = raf.readShort()
@@ -239,6 +259,7 @@ class ReadWriteFile(file: File, mode: String = "rw") extends ReadWrite {
   override def getLong: Long = raf.readLong()
   override def get(dst: Array[Byte]): Unit = raf.readFully(dst)
   override def get(dst: ByteBuffer): Unit = raf.getChannel.read(dst)
+  override def readAvailable(dst: ByteBuffer): Int = raf.getChannel.read(dst)
 
   override def putByte(v: Byte): Unit = raf.writeByte(v)
   override def putShort(v: Short): Unit = raf.writeShort(v)
@@ -276,13 +297,31 @@ class ReadWriteBuffer(buf: ByteBuffer, emptyBuffer: Boolean = false)
   override def length: Long = buf.limit()
   override def filePath: String = "ByteBuffer"
   override def truncate(n: Long): Unit = buf.limit(n.toInt)
+  override def sync(): Unit = {}
 
   override def getByte: Byte = buf.get
   override def getShort: Short = buf.getShort
   override def getInt: Int = buf.getInt
   override def getLong: Long = buf.getLong
   override def get(dst: Array[Byte]): Unit = buf.get(dst)
-  override def get(dst: ByteBuffer): Unit = dst.put(buf)
+  override def get(dst: ByteBuffer): Unit = {
+    if (dst.remaining() > buf.remaining()) throw new BufferUnderflowException
+    val src: ByteBuffer = buf.duplicate()
+    src.limit(buf.position() + dst.remaining())
+    dst.put(src)
+    buf.position(src.position())
+  }
+  override def readAvailable(dst: ByteBuffer): Int = {
+    if (!buf.hasRemaining) -1
+    else {
+      val n: Int = math.min(dst.remaining(), buf.remaining())
+      val src: ByteBuffer = buf.duplicate()
+      src.limit(buf.position() + n)
+      dst.put(src)
+      buf.position(src.position())
+      n
+    }
+  }
 
   private def updateLimit(writeBytes: Int): ByteBuffer = {
     val newLimit = pos + writeBytes
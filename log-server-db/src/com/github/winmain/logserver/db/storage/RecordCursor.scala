@@ -0,0 +1,233 @@
+package com.github.winmain.logserver.db.storage
+
+import java.io.{EOFException, IOException}
+import java.nio.ByteBuffer
+
+import com.github.winmain.logserver.core.{LogServer, RecordId}
+import com.github.winmain.logserver.db.storage.Storage._
+import javax.annotation.concurrent.NotThreadSafe
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * Курсор для последовательного чтения записей хранилища без создания объектов на каждую запись.
+ * Данные читаются из `read` большими блоками в переиспользуемый буфер, а поля текущей записи
+ * доступны как значения, либо как отрезки массива [[array]]. Эти отрезки действительны только
+ * до следующего вызова [[next()]].
+ * Имена таблиц интернируются: на каждую таблицу строка создаётся только один раз, а её id
+ * берётся из `tableNames`. Если передать сюда [[HeaderStorage.tableNames]], то [[tableId]]
+ * можно использовать для хедеров напрямую.
+ *
+ * @param read Поток, спозиционированный на начало первой записи
+ * @param tableNames Имена таблиц, по которым определяется [[tableId]]
+ * @param bufferSize Начальный размер буфера. Он увеличивается, если запись в него не помещается.
+ */
+@NotThreadSafe
+class RecordCursor(read: ReadStream,
+                   val tableNames: TableNames = new TableNames(),
+                   bufferSize: Int = 65536) {
+  private var buf: ByteBuffer = ByteBuffer.allocate(bufferSize)
+  buf.limit(0)
+  private var eof: Boolean = false
+
+  /** Позиция текущей записи в буфере. Меняется при сдвиге буфера. */
+  private var start: Int = 0
+
+  private var _offset: Long = -1L
+  private var _nextOffset: Long = read.pos
+  private var _timestamp: Long = 0L
+  private var _tableId: Int = -1
+  private var _idMarker: Byte = RecordId.EmptyIdMarker
+  private var _idInt: Int = 0
+  private var idRel: Int = 0
+  private var _idLength: Int = 0
+  private var dataRel: Int = 0
+  private var _dataLength: Int = 0
+
+  /** Байты известных таблиц для поиска [[tableId]] без создания строки. Индекс совпадает с id таблицы. */
+  private val tableBytes = new ArrayBuffer[Array[Byte]]()
+  private var lastTableId: Int = -1
+
+  /** Оффсет текущей записи в файле */
+  def offset: Long = _offset
+  /** Оффсет следующей записи в файле. Если [[next()]] бросил exception, то это оффсет повреждённой записи. */
+  def nextOffset: Long = _nextOffset
+  def timestamp: Long = _timestamp
+  def tableId: Int = _tableId
+  def tableName: String = tableNames.values(_tableId)
+
+  /** Массив, в котором находятся байты id и данных текущей записи */
+  def array: Array[Byte] = buf.array()
+
+  /** Тип id, один из [[RecordId.EmptyIdMarker]], [[RecordId.IntIdMarker]], [[RecordId.StringIdMarker]] */
+  def idMarker: Byte = _idMarker
+  /** Значение числового id */
+  def idInt: Int = _idInt
+  /** Начало байтов строкового id в [[array]] */
+  def idOffset: Int = start + idRel
+  def idLength: Int = _idLength
+
+  /** Начало данных записи в [[array]] */
+  def dataOffset: Int = start + dataRel
+  def dataLength: Int = _dataLength
+
+  /** Хеш id, совпадает с [[RecordId.hash]] */
+  def idHash: Int = _idMarker match {
+    case RecordId.IntIdMarker => _idInt
+    case RecordId.StringIdMarker =>
+      val a: Array[Byte] = array
+      var h = 0
+      var i = idOffset
+      val end = i + _idLength
+      while (i < end) {h = h * 31 + a(i); i += 1}
+      h
+    case _ => 0
+  }
+
+  /** Хеш записи, совпадает с [[Record.calcHash]] */
+  def calcHash: Int = Storage.calcHash(array, dataOffset, _dataLength, _timestamp)
+
+  def recordId: RecordId = _idMarker match {
+    case RecordId.IntIdMarker => RecordId(_idInt)
+    case RecordId.StringIdMarker => RecordId.str(java.util.Arrays.copyOfRange(array, idOffset, idOffset + _idLength))
+    case _ => RecordId.empty
+  }
+
+  def data: Array[Byte] = java.util.Arrays.copyOfRange(array, dataOffset, dataOffset + _dataLength)
+
+  def toRecord: Record = Record(_timestamp, tableName, recordId, data)
+
+  def makeHeader: Header = Header(_timestamp, _offset.toInt, calcHash, tableName, recordId)
+
+  /**
+   * Перейти к следующей записи.
+   * Возвращает false, если записи закончились. Если запись недописана или повреждена,
+   * то бросает [[IOException]], при этом [[nextOffset]] указывает на эту запись.
+   */
+  def next(): Boolean = {
+    start = buf.position()
+    if (!ensure(1)) return false
+    var rel = 0
+    _timestamp = getLong(rel)
+    rel += 8
+    val tableNameLength: Int = getSize(rel)
+    rel += sizeBytes
+    ensureOrFail(rel + tableNameLength)
+    _tableId = findTableId(start + rel, tableNameLength)
+    rel += tableNameLength
+    _idMarker = getByte(rel)
+    rel += 1
+    _idMarker match {
+      case RecordId.IntIdMarker =>
+        _idInt = getInt(rel)
+        rel += 4
+        _idLength = 0
+      case RecordId.StringIdMarker =>
+        _idLength = getSize(rel)
+        rel += sizeBytes
+        ensureOrFail(rel + _idLength)
+        idRel = rel
+        rel += _idLength
+      case RecordId.EmptyIdMarker =>
+        _idLength = 0
+      case invalid =>
+        throw new IOException("Invalid RecordId marker: " + invalid + ". Broken data?")
+    }
+    _dataLength = getSize(rel)
+    rel += sizeBytes
+    ensureOrFail(rel + _dataLength)
+    dataRel = rel
+    rel += _dataLength
+
+    buf.position(start + rel)
+    _offset = _nextOffset
+    _nextOffset += rel
+    true
+  }
+
+  // ------------------------------- Buffer reading -------------------------------
+
+  /** Количество байт, прочитанных последним [[getSize()]] */
+  private var sizeBytes: Int = 0
+
+  private def getByte(rel: Int): Byte = {ensureOrFail(rel + 1); buf.get(start + rel)}
+  private def getInt(rel: Int): Int = {ensureOrFail(rel + 4); buf.getInt(start + rel)}
+  private def getLong(rel: Int): Long = {ensureOrFail(rel + 8); buf.getLong(start + rel)}
+
+  /** Прочитать размер в формате UInt29, как [[Storage.readBytes()]] */
+  private def getSize(rel: Int): Int = {
+    var value = 0
+    var i = 0
+    var b = getByte(rel) & 0xff
+    while (b >= 128 && i < 3) {
+      value = (value | (b & 0x7f)) << (if (i == 2) 8 else 7)
+      i += 1
+      b = getByte(rel + i) & 0xff
+    }
+    sizeBytes = i + 1
+    value |= b
+    if (value > MaxBytesBuffer) throw new IOException("Read too big byte array size: " + value + ". Broken data?")
+    value
+  }
+
+  private def ensureOrFail(bytes: Int): Unit =
+    if (!ensure(bytes)) throw new EOFException("Unexpected end of record at offset " + _nextOffset)
+
+  /**
+   * Убедиться, что в буфере есть `bytes` байт, начиная с текущей записи. Дочитывает данные
+   * из потока, сдвигая и, если нужно, увеличивая буфер. Возвращает false, если поток закончился.
+   */
+  private def ensure(bytes: Int): Boolean = {
+    if (buf.limit() - start >= bytes) true
+    else {
+      if (buf.capacity() < bytes) {
+        val newBuf: ByteBuffer = ByteBuffer.allocate(math.max(bytes, buf.capacity() * 2))
+        buf.position(start)
+        newBuf.put(buf)
+        buf = newBuf
+      } else {
+        buf.position(start)
+        buf.compact()
+      }
+      start = 0
+      // Здесь буфер в режиме записи, его position - конец прочитанных данных
+      while (!eof && buf.position() < bytes) {
+        if (read.readAvailable(buf) < 0) eof = true
+      }
+      buf.flip()
+      buf.limit() >= bytes
+    }
+  }
+
+  // ------------------------------- Tables -------------------------------
+
+  /** Найти id таблицы по байтам её имени. Строка создаётся только для новой таблицы. */
+  private def findTableId(pos: Int, length: Int): Int = {
+    if (lastTableId >= 0 && bytesEqual(tableBytes(lastTableId), pos, length)) return lastTableId
+    var i = 0
+    while (i < tableBytes.length) {
+      val bytes: Array[Byte] = tableBytes(i)
+      if (bytes != null && bytesEqual(bytes, pos, length)) {
+        lastTableId = i
+        return i
+      }
+      i += 1
+    }
+    val bytes: Array[Byte] = java.util.Arrays.copyOfRange(array, pos, pos + length)
+    val tableId: Int = tableNames.getOrAdd(new String(bytes, LogServer.Charset))
+    while (tableBytes.length <= tableId) tableBytes += null
+    tableBytes(tableId) = bytes
+    lastTableId = tableId
+    tableId
+  }
+
+  private def bytesEqual(bytes: Array[Byte], pos: Int, length: Int): Boolean = {
+    if (bytes.length != length) false
+    else {
+      val a: Array[Byte] = array
+      var i = 0
+      while (i < length && bytes(i) == a(pos + i)) i += 1
+      i == length
+    }
+  }
+}
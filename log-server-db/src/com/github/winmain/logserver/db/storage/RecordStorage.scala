@@ -29,6 +29,31 @@ class StorageOpts {
   var recordStorageVersion: Int = 2
   var recordStorageHeaderSize: Int = 64
 
+  /**
+   * Максимальный размер дельты хедеров в процентах от количества хедеров в базовом файле.
+   * Пока дельта не превышает этот размер, новые хедеры дописываются в дельта-файл при закрытии
+   * хранилища. Иначе базовые файлы хедеров и хешей перезаписываются целиком вместе с дельтой.
+   * Дельта держится в памяти в хеш-таблицах, поэтому занимает больше места, чем базовый файл.
+   */
+  var headerDeltaMaxPercent: Int = 25
+
+  /**
+   * То же, что [[headerDeltaMaxPercent]], но для контрольных точек. Контрольные точки делаются
+   * в процессе заполнения хранилища, когда базовый файл ещё мал, и с ограничением в 25%
+   * почти каждая из них перезаписывала бы хедеры целиком. При 100% базовый файл перезаписывается
+   * только тогда, когда хранилище выросло вдвое с последней полной записи. Полное сжатие
+   * с обычным ограничением происходит при закрытии хранилища.
+   */
+  var checkpointDeltaMaxPercent: Int = 100
+
+  /**
+   * Через каждые столько добавленных записей [[AppendableBigStorage]] делает контрольную точку:
+   * сбрасывает записи на диск, сохраняет хедеры и обновляет [[RecordStorage.RSHead]].
+   * После некорректного закрытия хранилища восстановление хедеров начнётся с последней
+   * контрольной точки, а не с начала файла записей.
+   */
+  var checkpointRecordNum: Int = 50000
+
   /**
    * Добавить хук, который разблокирует [[BigStorage]] при остановке JVM.
    */
@@ -73,6 +98,15 @@ abstract class RecordStorage(opts: StorageOpts) {
       needSave = false
       read.skip(opts.recordStorageHeaderSize - read.pos)
     }
+    def copy(): RSHead = {
+      val h = new RSHead
+      h.version = version
+      h.totalBytes = totalBytes
+      h.minTimestamp = minTimestamp
+      h.maxTimestamp = maxTimestamp
+      h.recordNum = recordNum
+      h
+    }
     def write(rw: ReadWrite, writeEndingZeroes: Boolean = false): Unit = {
       val pos0: Long = rw.pos
       rw.putInt(version)
@@ -90,11 +124,13 @@ abstract class RecordStorage(opts: StorageOpts) {
       needSave = false
     }
 
-    def onRecordAdded(record: Record, newTotalBytes: Long): Unit = {
+    def onRecordAdded(record: Record, newTotalBytes: Long): Unit = onRecordAdded(record.timestamp, newTotalBytes)
+
+    def onRecordAdded(timestamp: Long, newTotalBytes: Long): Unit = {
       require(newTotalBytes > totalBytes, "newTotalBytes must be greater than totalBytes: " + newTotalBytes + ", " + totalBytes)
       totalBytes = newTotalBytes
-      minTimestamp = math.min(minTimestamp, record.timestamp)
-      maxTimestamp = math.max(maxTimestamp, record.timestamp)
+      minTimestamp = math.min(minTimestamp, timestamp)
+      maxTimestamp = math.max(maxTimestamp, timestamp)
       recordNum += 1
       needSave = true
     }
@@ -157,21 +193,26 @@ abstract class RecordStorage(opts: StorageOpts) {
 
   /**
    * Восстановить заголовки из хранилища и сам [[RSHead]].
+   * Записи читаются через [[RecordCursor]], поэтому `receiver` получает один и тот же курсор
+   * для каждой записи, и не должен сохранять ссылки на его буфер.
+   *
+   * @param cursor Курсор, спозиционированный на первую восстанавливаемую запись
+   * @param startHead Состояние, с которого начинается восстановление. По умолчанию - пустое
+   *                  хранилище, иначе - последняя контрольная точка.
    */
-  protected def restore(read: ReadStream, log: Logger)(receiver: Header => Any): RSHead = {
-    val newHead = new RSHead
-    endFileOffset = opts.recordStorageHeaderSize
-    while (read.available) {
-      val pos0 = read.pos
-      try {
-        val record: Record = readRecord(read)
-        receiver(Header(record.timestamp, endFileOffset.toInt, record.calcHash, record.tableName, record.id))
-        endFileOffset += read.pos - pos0
-        newHead.onRecordAdded(record, endFileOffset)
-      } catch {
-        case IoDataStreamException(e) =>
-          log.error("Cannot read crashed record at end of file " + read + " starting at pos:" + pos0 + ". Deleting it & truncating file.")
+  protected def restore(cursor: RecordCursor, log: Logger, startHead: RSHead = new RSHead)(receiver: RecordCursor => Any): RSHead = {
+    val newHead = startHead
+    endFileOffset = newHead.totalBytes
+    require(cursor.nextOffset == endFileOffset, "RecordCursor must start at " + endFileOffset + ", but got " + cursor.nextOffset)
+    try {
+      while (cursor.next()) {
+        receiver(cursor)
+        endFileOffset = cursor.nextOffset
+        newHead.onRecordAdded(cursor.timestamp, endFileOffset)
       }
+    } catch {
+      case IoDataStreamException(e) =>
+        log.error("Cannot read crashed record at end of file starting at pos:" + cursor.nextOffset + ". Deleting it & truncating file.")
     }
     newHead
   }
@@ -210,22 +251,39 @@ class RecoveryRecordStorage(read: ReadStream,
   head.initFrom(read)
 
   def usingReceiver(receiver: Header => Any): Unit = {
-    checkAndSaveHead(restore(read, log)(receiver))
+    checkAndSaveHead(restore(new RecordCursor(read), log)(c => receiver(c.makeHeader)))
+    read.close()
+  }
+
+  /**
+   * Восстановить только хедеры записей, добавленных после последней контрольной точки.
+   * Подразумевается, что хранилище хедеров `hs` уже содержит хедеры всех записей
+   * до [[RecordStorage.RSHead.totalBytes]], т.е. его количество и таймстемпы совпадают с head.
+   * Недописанная запись в конце файла отрезается, чтобы [[AppendableRecordStorage]] не начал
+   * восстанавливать все хедеры заново.
+   */
+  def resumeHeaderStorage(hs: HeaderStorage): Unit = {
+    read.skip(head.totalBytes - read.pos)
+    checkAndSaveHead(restore(new RecordCursor(read, hs.tableNames), log, head.copy()) {cursor =>
+      hs.add(cursor, allowDuplicates = true)
+    })
     read.close()
   }
 
   def toHeaderStorage: NewHeaderStorage = {
     val hs: NewHeaderStorage = new NewHeaderStorage()
-    checkAndSaveHead(restore(read, log) {header =>
-      hs.add(header, allowDuplicates = true)
+    checkAndSaveHead(restore(new RecordCursor(read, hs.tableNames), log) {cursor =>
+      hs.add(cursor, allowDuplicates = true)
     })
     read.close()
     hs
   }
 
   private def checkAndSaveHead(newHead: RSHead): Unit = {
-    if (newHead.totalBytes != head.totalBytes || newHead.recordNum != head.recordNum) {
+    val hasCrashedTail: Boolean = read.maybeLength.exists(_ > newHead.totalBytes)
+    if (hasCrashedTail || newHead.totalBytes != head.totalBytes || newHead.recordNum != head.recordNum) {
       val rw: ReadWrite = rwFn()
+      if (hasCrashedTail) rw.truncate(newHead.totalBytes)
       rw.seek(0)
       newHead.write(rw, writeEndingZeroes = true)
       rw.close()
@@ -252,7 +310,7 @@ class AppendableRecordStorage(rw: ReadWrite,
       log.warn("Storage " + rw.filePath + " has invalid head.totalBytes: " + head.totalBytes +
         ", but storageFile.length: " + rw.length + ". Restoring storage & headers.")
       val receiver: (Header) => Any = onRecoverReceiver
-      head = restore(rw, log)(receiver)
+      head = restore(new RecordCursor(rw), log)(c => receiver(c.makeHeader))
       head.needSave = true
     } else {
       endFileOffset = head.totalBytes
@@ -290,6 +348,9 @@ class AppendableRecordStorage(rw: ReadWrite,
     }
   }
 
+  /** Сбросить записи и head на диск */
+  def sync(): Unit = rw.sync()
+
   def close(): Unit = {
     if (head.needSave) writeHead()
     rw.close()
@@ -46,7 +46,10 @@ object Storage {
   }
 
   def calcHash(data: Array[Byte], timestamp: Long): Int =
-    MurmurHash3.hash(data) ^ ((timestamp >> 32) ^ (timestamp & 0xffffffff)).toInt
+    calcHash(data, 0, data.length, timestamp)
+
+  def calcHash(data: Array[Byte], offset: Int, length: Int, timestamp: Long): Int =
+    MurmurHash3.murmurhash3_x86_32(data, offset, length, 0) ^ ((timestamp >> 32) ^ (timestamp & 0xffffffff)).toInt
 
   private[db] def readBytes(read: ReadStream): Array[Byte] = {
     val size: Int = read.readUInt29()
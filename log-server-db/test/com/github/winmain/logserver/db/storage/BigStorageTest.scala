@@ -1,5 +1,8 @@
 package com.github.winmain.logserver.db.storage
 
+import java.nio.file.Files
+import java.util.concurrent.TimeUnit
+
 import com.github.winmain.logserver.core.RecordId
 import com.github.winmain.logserver.db.storage.Storage.Record
 import com.google.common.jimfs.{Configuration, Jimfs}
@@ -70,6 +73,74 @@ class BigStorageTest extends Specification with Mockito {
     success
   }
 
+  "read suspended storage & fail resume after foreign write" in {
+    val fs = Jimfs.newFileSystem(Configuration.unix())
+    val path = fs.getPath("/")
+    val abs: AppendableBigStorage = new AppendableBigStorage(new RealDirectory(path), log = mock[Logger])
+    abs.addRecord(rec1) === true
+    abs.addRecord(rec4) === true
+    abs.suspend()
+
+    // Пока хранилище приостановлено, записи можно читать из другого процесса
+    locally {
+      val rbs: ReadOnlyBigStorage = new ReadOnlyBigStorage(new RealDirectory(path))
+      rbs.getRecords("user", RecordId(1)) === Vector(rec1)
+      rbs.getRecords("account", RecordId(5)) === Vector(rec4)
+      rbs.close()
+    }
+
+    abs.resume()
+    abs.addRecord(rec2) === true
+    abs.suspend()
+
+    // Другой процесс дописал запись, продолжать работу со старым состоянием нельзя
+    locally {
+      val other: AppendableBigStorage = new AppendableBigStorage(new RealDirectory(path), log = mock[Logger])
+      other.addRecord(rec3) === true
+      other.close()
+    }
+    abs.resume() must throwA[RuntimeException]
+    new RealDirectory(path).canLock === true
+
+    // Другой процесс добавил новое хранилище
+    locally {
+      val abs2: AppendableBigStorage = new AppendableBigStorage(new RealDirectory(path), log = mock[Logger])
+      abs2.suspend()
+      Files.createFile(path.resolve("002.record"))
+      abs2.resume() must throwA[RuntimeException](message = "were changed")
+      new RealDirectory(path).canLock === true
+    }
+
+    fs.close()
+    success
+  }
+
+  "waiting lock does not block unlock in the same process" in {
+    val fs = Jimfs.newFileSystem(Configuration.unix())
+    val path = fs.getPath("/")
+    val log = mock[Logger]
+    val dir1 = new RealDirectory(path)
+    val dir2 = new RealDirectory(path)
+    dir1.lock(log, 0 -> TimeUnit.SECONDS)
+
+    val waitingThread = new Thread() {
+      override def run(): Unit = dir2.lock(log, 5 -> TimeUnit.SECONDS)
+    }
+    waitingThread.start()
+    Thread.sleep(200L)
+
+    val unlockStart: Long = System.currentTimeMillis()
+    dir1.unlock()
+    (System.currentTimeMillis() - unlockStart) must be_<(1000L)
+    waitingThread.join(5000L)
+    dir2.locked === true
+    dir1.lock(log, 0 -> TimeUnit.SECONDS) must throwA[DirectoryLockedException]
+
+    dir2.unlock()
+    fs.close()
+    success
+  }
+
   "write multiple storages" in {
     val dir = new FakeDirectory()
     // step1: write appendable
@@ -128,6 +199,60 @@ class BigStorageTest extends Specification with Mockito {
   }
 
 
+  "append header delta & compact on archive" in {
+    val dir = new FakeDirectory()
+    val log = mock[Logger]
+    val opts = new StorageOpts
+    opts.headerDeltaMaxPercent = 50
+
+    // step1: write base headers
+    locally {
+      val abs: AppendableBigStorage = new AppendableBigStorage(dir, opts, log)
+      abs.addRecord(rec1) === true
+      abs.addRecord(rec2) === true
+      abs.addRecord(rec3) === true
+      abs.close()
+    }
+    val info: FakeStorageInfo = dir.infos.head
+    info.headerDeltaBuf.limit() === 0
+
+    // step2: append records, headers go to delta
+    locally {
+      val abs: AppendableBigStorage = new AppendableBigStorage(dir, opts, log)
+      abs.addRecord(rec3) === false
+      abs.addRecord(rec4) === true
+      abs.close()
+    }
+    val headerLimit: Int = info.headerBuf.limit()
+    info.headerDeltaBuf.limit() must be > 0
+
+    // step3: read records using delta
+    locally {
+      val rbs: ReadOnlyBigStorage = new ReadOnlyBigStorage(dir, opts, log)
+      rbs.getRecords("user", RecordId(1)) === Vector(rec1, rec2)
+      rbs.getRecords("account", RecordId(5)) === Vector(rec4)
+      rbs.close()
+    }
+
+    // step4: archive compacts delta into headers
+    locally {
+      val abs: AppendableBigStorage = new AppendableBigStorage(dir, opts, log)
+      abs.archive()
+      abs.close()
+    }
+    info.headerDeltaBuf.limit() === 0
+    info.headerBuf.limit() must be > headerLimit
+    locally {
+      val rbs: ReadOnlyBigStorage = new ReadOnlyBigStorage(dir, opts, log)
+      rbs.getRecords("account", RecordId(5)) === Vector(rec4)
+      rbs.close()
+    }
+    no(log).warn(anyString)
+    no(log).warn(anyString, any[Throwable]())
+    success
+  }
+
+
   class DeleteContext(optFn: StorageOpts => Any = _ => ()) extends Scope {
     val dir = new FakeDirectory()
     val log = mock[Logger]
@@ -242,4 +367,72 @@ class BigStorageTest extends Specification with Mockito {
     }
     success
   }
+
+
+  "crushed storage recovers from checkpoint" in {
+    val dir = new FakeDirectory()
+    val log = mock[Logger]
+    val opts = new StorageOpts
+    opts.checkpointRecordNum = 2
+    opts.headerDeltaMaxPercent = 100
+
+    // step1: write 3 records, checkpoints are made at 2 records, then crash
+    locally {
+      val abs: AppendableBigStorage = new AppendableBigStorage(dir, log = log, opts = opts)
+      abs.addRecord(rec1) === true
+      abs.addRecord(rec2) === true
+      abs.addRecord(rec3) === true
+      abs.unlock()
+    }
+    no(log).warn(anyString)
+
+    // step2: recover only the records after checkpoint
+    locally {
+      val abs: AppendableBigStorage = new AppendableBigStorage(dir, log = log, opts = opts)
+      one(log).warn(argThat((_: String).contains("from checkpoint")))
+      abs.addRecord(rec3) === false
+      abs.addRecord(rec4) === true
+      abs.close()
+    }
+
+    // step3: check records
+    locally {
+      val log = mock[Logger]
+      val rbs: ReadOnlyBigStorage = new ReadOnlyBigStorage(dir, opts, log)
+      rbs.getRecords("user", RecordId(1)) === Vector(rec1, rec2)
+      rbs.getRecords("user", RecordId(2)) === Vector(rec3)
+      rbs.getRecords("account", RecordId(5)) === Vector(rec4)
+      rbs.close()
+      no(log).warn(anyString)
+    }
+
+    // step4: crash in the middle of a record right after checkpoint
+    locally {
+      val abs: AppendableBigStorage = new AppendableBigStorage(dir, log = log, opts = opts)
+      abs.addRecord(rec5) === true
+      abs.unlock()
+      val recordBuf = dir.infos.head.recordBuf
+      val end: Int = recordBuf.limit()
+      recordBuf.limit(end + 10)
+      recordBuf.position(end)
+      recordBuf.putLong(120L).put(5: Byte).put('a': Byte)
+    }
+
+    // step5: torn tail is cut off, and headers are not restored from the beginning
+    locally {
+      val log = mock[Logger]
+      val abs: AppendableBigStorage = new AppendableBigStorage(dir, log = log, opts = opts)
+      abs.addRecord(rec5) === false
+      abs.addRecord(sRec1) === true
+      abs.close()
+      one(log).warn(argThat((_: String).contains("from checkpoint")))
+      no(log).warn(argThat((_: String).contains("Restoring storage")))
+
+      val rbs: ReadOnlyBigStorage = new ReadOnlyBigStorage(dir, opts, log)
+      rbs.getRecords("account", RecordId(5)) === Vector(rec4, rec5)
+      rbs.getRecords("operation", sRec1.id) === Vector(sRec1)
+      rbs.close()
+    }
+    success
+  }
 }
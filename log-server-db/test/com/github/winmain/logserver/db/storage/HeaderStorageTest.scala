@@ -179,4 +179,110 @@ class HeaderStorageTest extends Specification {
     }
     success
   }
+
+
+  "test delta" in {
+    val buf = ByteBuffer.allocate(8192)
+    val hashBuf = ByteBuffer.allocate(8192)
+    val deltaBuf = ByteBuffer.allocate(8192)
+    deltaBuf.limit(0)
+
+    // step1: fill & save base storage
+    locally {
+      val hs: NewHeaderStorage = new NewHeaderStorage
+      hs.canSaveDelta(100) === false // empty base
+      hs.add(Header(50L, 150, 555999, "user", RecordId(1)))
+      hs.add(Header(78L, 160, 1234, "user", RecordId(1)))
+      hs.add(Header(34L, 170, -62438, "user", RecordId(5)))
+      hs.add(Header(25L, 180, 1234, "account", RecordId(1)))
+      hs.save(new ReadWriteBuffer(buf, emptyBuffer = true), Some(new ReadWriteBuffer(hashBuf, emptyBuffer = true)))
+      hs.hasDelta === false
+    }
+
+    // step2: append first delta
+    locally {
+      val hs = new ExistedHeaderStorage(new ReadWriteBuffer(buf), new ReadWriteBuffer(hashBuf), new ReadWriteBuffer(deltaBuf))
+      hs.hasDelta === false
+      hs.add(Header(90L, 190, 789, "user", RecordId(1))) === true
+      hs.add(Header(20L, 200, 35, "event", RecordId(7))) === true
+      hs.canSaveDelta(25) === false
+      hs.canSaveDelta(50) === true
+      hs.saveDelta(new ReadWriteBuffer(deltaBuf))
+      hs.needSave === false
+      hs.hasDelta === true
+    }
+
+    // step3: read delta & append second one
+    locally {
+      val ehs = new EssentialHeaderStorageImpl(new ReadWriteBuffer(buf), new ReadWriteBuffer(deltaBuf))
+      ehs.getCount === 6
+      ehs.getHashCount === 6
+      ehs.getMinTimestamp === 20L
+      ehs.getMaxTimestamp === 90L
+
+      val hs = new ExistedHeaderStorage(new ReadWriteBuffer(buf), new ReadWriteBuffer(hashBuf), new ReadWriteBuffer(deltaBuf))
+      hs.getCount === 6
+      hs.hasDelta === true
+      hs.contains("user", RecordId(1), 789) === true
+      hs.contains("event", RecordId(7), 35) === true
+      hs.getOffsets("user", RecordId(1)).toSet === Set(150, 160, 190)
+      hs.getOffsets("event", RecordId(7)).toSet === Set(200)
+
+      hs.add(Header(95L, 210, 42, "event", RecordId(8))) === true
+      hs.add(Header(96L, 220, 43, "order", RecordId(1))) === true
+      hs.saveDelta(new ReadWriteBuffer(deltaBuf))
+    }
+
+    // step4: read both deltas & compact
+    locally {
+      val hs = new ExistedHeaderStorage(new ReadWriteBuffer(buf), new ReadWriteBuffer(hashBuf), new ReadWriteBuffer(deltaBuf))
+      hs.getCount === 8
+      hs.getMaxTimestamp === 96L
+      hs.contains("event", RecordId(7), 35) === true
+      hs.contains("order", RecordId(1), 43) === true
+      hs.getOffsets("event", RecordId(8)).toSet === Set(210)
+      hs.getOffsets("user", RecordId(5)).toSet === Set(170)
+
+      hs.save(new ReadWriteBuffer(buf, emptyBuffer = true), Some(new ReadWriteBuffer(hashBuf, emptyBuffer = true)))
+      hs.hasDelta === false
+    }
+
+    // step5: stale delta is ignored after compaction
+    locally {
+      val hs = new ExistedHeaderStorage(new ReadWriteBuffer(buf), new ReadWriteBuffer(hashBuf), new ReadWriteBuffer(deltaBuf))
+      hs.getCount === 8
+      hs.hasDelta === false
+      hs.getOffsets("user", RecordId(1)).toSet === Set(150, 160, 190)
+      hs.contains("order", RecordId(1), 43) === true
+    }
+
+    // step6: write delta for the compacted base
+    locally {
+      val hs = new ExistedHeaderStorage(new ReadWriteBuffer(buf), new ReadWriteBuffer(hashBuf), new ReadWriteBuffer(deltaBuf))
+      hs.add(Header(97L, 230, 44, "order", RecordId(2))) === true
+      hs.canSaveDelta(25) === true
+      hs.saveDelta(new ReadWriteBuffer(deltaBuf))
+
+      new EssentialHeaderStorageImpl(new ReadWriteBuffer(buf), new ReadWriteBuffer(deltaBuf)).getCount === 9
+      val hs2 = new ExistedHeaderStorage(new ReadWriteBuffer(buf), new ReadWriteBuffer(hashBuf), new ReadWriteBuffer(deltaBuf))
+      hs2.getCount === 9
+      hs2.hasDelta === true
+      hs2.contains("order", RecordId(2), 44) === true
+    }
+
+    // step7: torn delta tail is ignored by both storages
+    locally {
+      deltaBuf.limit(deltaBuf.limit() - 3)
+      val ehs = new EssentialHeaderStorageImpl(new ReadWriteBuffer(buf), new ReadWriteBuffer(deltaBuf))
+      ehs.getCount === 8
+      ehs.getHashCount === 8
+      ehs.getMaxTimestamp === 96L
+
+      val hs = new ExistedHeaderStorage(new ReadWriteBuffer(buf), new ReadWriteBuffer(hashBuf), new ReadWriteBuffer(deltaBuf))
+      hs.getCount === 8
+      hs.hasDelta === false
+      hs.contains("order", RecordId(2), 44) === false
+    }
+    success
+  }
 }
@@ -0,0 +1,80 @@
+package com.github.winmain.logserver.db.storage
+
+import java.nio.ByteBuffer
+
+import com.github.winmain.logserver.core.RecordId
+import com.github.winmain.logserver.db.storage.Storage._
+import org.specs2.mutable.Specification
+
+class RecordCursorTest extends Specification {
+  val opts: StorageOpts = new StorageOpts
+
+  val rec1: Record = Record(123L, "table", RecordId(3), "abcdef".getBytes)
+  val rec2: Record = Record(523L, "qweqwe", RecordId("65ebd48c-aca3-45de-9614-40f4095e5531"), ("long data " * 20).getBytes)
+  val rec3: Record = Record(80L, "table", RecordId(90), "some bytes".getBytes)
+
+  def writeRecords(records: Record*): ByteBuffer = {
+    val buf = ByteBuffer.allocate(8192)
+    val ws: AppendableRecordStorage = new AppendableRecordStorage(new ReadWriteBuffer(buf, emptyBuffer = true))
+    records.foreach(ws.addRecord)
+    ws.close()
+    buf
+  }
+
+  def openCursor(buf: ByteBuffer, tableNames: TableNames = new TableNames()): RecordCursor = {
+    val rw = new ReadWriteBuffer(buf)
+    rw.skip(opts.recordStorageHeaderSize)
+    // Маленький буфер, чтобы проверить дочитывание и увеличение буфера
+    new RecordCursor(rw, tableNames, bufferSize = 16)
+  }
+
+  "read all records" in {
+    val buf = writeRecords(rec1, rec2, rec3)
+    val cursor = openCursor(buf)
+
+    cursor.next() === true
+    cursor.offset === 64
+    cursor.toRecord === rec1
+    cursor.idHash === rec1.id.hash
+    cursor.calcHash === rec1.calcHash
+    cursor.tableId === 0
+    val tableName: String = cursor.tableName
+
+    cursor.next() === true
+    cursor.toRecord === rec2
+    cursor.idHash === rec2.id.hash
+    cursor.calcHash === rec2.calcHash
+    cursor.tableId === 1
+
+    cursor.next() === true
+    cursor.toRecord === rec3
+    cursor.makeHeader === rec3.makeHeader(cursor.offset.toInt)
+    cursor.tableId === 0
+    cursor.tableName must beTheSameAs(tableName)
+    cursor.nextOffset === buf.limit()
+
+    cursor.next() === false
+    cursor.tableNames.values === Seq("table", "qweqwe")
+  }
+
+  "use existing table names" in {
+    val tableNames = new TableNames()
+    tableNames.getOrAdd("qweqwe")
+    val cursor = openCursor(writeRecords(rec1, rec2), tableNames)
+    cursor.next() === true
+    cursor.tableId === 1
+    cursor.next() === true
+    cursor.tableId === 0
+    tableNames.values === Seq("qweqwe", "table")
+  }
+
+  "fail on crashed record" in {
+    val buf = writeRecords(rec1, rec2)
+    buf.limit(buf.limit() - 10)
+    val cursor = openCursor(buf)
+    cursor.next() === true
+    val crashedOffset = cursor.nextOffset
+    cursor.next() must throwA[java.io.EOFException]
+    cursor.nextOffset === crashedOffset
+  }
+}
@@ -192,4 +192,44 @@ class RecordStorageTest extends Specification with Mockito {
     }
     success
   }
+
+
+  "resume recovery from checkpoint" in {
+    val buf = ByteBuffer.allocate(8192)
+    val rw = new ReadWriteBuffer(buf, emptyBuffer = true)
+
+    // step1: write 2 records, checkpoint, then write 1 more without updating head
+    locally {
+      val ws: AppendableRecordStorage = new AppendableRecordStorage(rw)
+      ws.addRecord(rec1)
+      ws.addRecord(rec2)
+      ws.writeHead()
+      ws.addRecord(rec3)
+    }
+
+    // step2: recover only the tail
+    locally {
+      rw.seek(0)
+      val hs: NewHeaderStorage = new NewHeaderStorage
+      hs.add(rec1.makeHeader(64), allowDuplicates = true)
+      hs.add(rec2.makeHeader(90), allowDuplicates = true)
+      val rrs = new RecoveryRecordStorage(rw, () => rw, opts = opts)
+      rrs.headRecordNum === 2
+      rrs.resumeHeaderStorage(hs)
+      hs.getCount === 3
+      hs.getOffsets(rec3.tableName, rec3.id) === Vector(114)
+      hs.contains(rec3.tableName, rec3.id, rec3.calcHash) === true
+    }
+
+    // step3: head is updated
+    locally {
+      rw.seek(0)
+      val rs = new ReadOnceRecordStorage(rw)
+      rs.headRecordNum === 3
+      rs.headMinTimestamp === 80L
+      rs.headMaxTimestamp === 523L
+      rs.headTotalBytes === buf.limit()
+    }
+    success
+  }
 }
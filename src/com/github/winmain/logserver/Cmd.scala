@@ -11,6 +11,7 @@ object Cmd extends CommandUtils {
     "archive" -> ArchiveCommand,
     "convert-month" -> ConvertMonthCommand,
     "convert-year" -> ConvertYearCommand,
+    "follow" -> FollowCommand,
     "get" -> GetCommand.apply,
     "info" -> InfoCommand,
     "update" -> UpdateCommand
@@ -0,0 +1,45 @@
+package com.github.winmain.logserver.command
+import java.nio.file.Paths
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+
+import com.github.winmain.logserver.db.LogServerDb
+import org.slf4j.Logger
+
+import scala.util.Try
+
+case class FollowCommand() extends Command {
+  /**
+   * Непрерывно добавлять новые данные в базу по мере появления файлов обновлений, и удалять
+   * успешно прочитанные файлы. Работает до остановки процесса.
+   * Например: dbDir = /mnt/test/logs/2015, updates = /home/myproject/log/sql-new
+   * dbDir - Путь до базы данных логов с годом вконце
+   * updates - Каталог, куда LogWriterClient сохраняет файлы логов
+   * poll-seconds - Как часто проверять каталог с обновлениями, по умолчанию раз в секунду
+   */
+  override def run(log: Logger, params: Array[String]): Unit = {
+    if (params.length < 2 || params.length > 3) exitError("Usage: follow <db-dir> <updates> [poll-seconds]")
+
+    val dbDir = Paths.get(params(0))
+    val updatesDir = Paths.get(params(1))
+    val pollSeconds: Int =
+      if (params.length > 2) Try(params(2).toInt).filter(_ > 0).getOrElse(exitError("Invalid poll-seconds: " + params(2)))
+      else 1
+
+    // При остановке процесса дождаться, пока текущая порция записей будет добавлена, и база закрыта.
+    // Ожидание ограничено, чтобы процесс не завис, если основной поток сам ждёт завершения JVM.
+    val stopLatch = new CountDownLatch(1)
+    val mainThread: Thread = Thread.currentThread()
+    Runtime.getRuntime.addShutdownHook(new Thread() {
+      override def run(): Unit = {
+        stopLatch.countDown()
+        mainThread.join(TimeUnit.SECONDS.toMillis(StopTimeoutSeconds))
+      }
+    })
+
+    LogServerDb.create(dbDir, log).follow(updatesDir, stopLatch, pollSeconds * 1000L)
+
+    log.info("Finished follow")
+  }
+
+  private val StopTimeoutSeconds = 60
+}
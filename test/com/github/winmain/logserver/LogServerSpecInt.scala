@@ -1,6 +1,7 @@
 package com.github.winmain.logserver
 
 import java.nio.file.{Files, Path}
+import java.util.concurrent.CountDownLatch
 
 import com.github.winmain.logserver.client.LogWriterClient
 import com.github.winmain.logserver.core.RecordId
@@ -105,6 +106,86 @@ class LogServerSpecInt extends Specification {
     }
   }
 
+  "Follow" should {
+    "Add new saved files while running" in {
+      val fs = Jimfs.newFileSystem(Configuration.unix())
+
+      val updatesPath = fs.getPath("/updates")
+      Files.createDirectory(updatesPath)
+
+      val dbPath = fs.getPath("/db")
+      Files.createDirectory(dbPath)
+
+      val logger: Logger = StaticLoggerBinder.getSingleton.getLoggerFactory.getLogger("test")
+
+      // Повреждённый файл должен быть отложен, и не мешать чтению остальных
+      Files.write(updatesPath.resolve("19700101T000000.saved"), Array[Byte](0, 0, 0, 99))
+
+      locally {
+        val writer = new LogWriterClient(updatesPath, logger = logger)
+        writer.append(userTableName, userId1, ts1, log1)
+        writer.append(userTableName, userId1, ts2, log2)
+        writer.close()
+      }
+
+      val db = LogServerDb.create(dbPath, logger)
+      val stopLatch = new CountDownLatch(1)
+      @volatile var followError: Throwable = null
+      val followThread = new Thread() {
+        override def run(): Unit =
+          try db.follow(updatesPath, stopLatch, pollIntervalMillis = 10L, maxBatchFiles = 1)
+          catch {case e: Throwable => followError = e}
+      }
+      followThread.start()
+
+      // Файлы удаляются после контрольной точки, когда хранилище уже разблокировано
+      def waitProcessed(): Unit = {
+        val deadline: Long = System.currentTimeMillis() + 10000L
+        while (fileNames(updatesPath).exists(_.endsWith(".saved")) && System.currentTimeMillis() < deadline) Thread.sleep(10L)
+      }
+
+      waitProcessed()
+      fileNames(updatesPath) === List("19700101T000000.saved.failed")
+      db.get(userTableName, RecordId(userId1)) === ArrayBuffer(
+        JsRecord(ts1, userTableName, RecordId(userId1), log1),
+        JsRecord(ts2, userTableName, RecordId(userId1), log2)
+      )
+
+      locally {
+        val writer = new LogWriterClient(updatesPath, logger = logger)
+        writer.append(userTableName, userId1, ts1, log1)
+        writer.append(eventTableName, eventId1, ts6, log6)
+        writer.close()
+      }
+      waitProcessed()
+      db.get(eventTableName, RecordId(eventId1)) === ArrayBuffer(JsRecord(ts6, eventTableName, RecordId(eventId1), log6))
+
+      // Чтение во время добавления порции не должно ждать до таймаута блокировки
+      locally {
+        val writer = new LogWriterClient(updatesPath, logger = logger)
+        for (i <- 1 to 20000) writer.append(eventTableName, i, ts7, log7 + i)
+        writer.close()
+      }
+      val readStart: Long = System.currentTimeMillis()
+      while (fileNames(updatesPath).exists(_.endsWith(".saved"))) {
+        db.get(userTableName, RecordId(userId1)).length === 2
+      }
+      (System.currentTimeMillis() - readStart) must be_<(30000L)
+      db.get(eventTableName, RecordId(20000)) === ArrayBuffer(JsRecord(ts7, eventTableName, RecordId(20000), log7 + 20000))
+
+      stopLatch.countDown()
+      followThread.join(10000L)
+      followThread.isAlive === false
+      followError === null
+      db.get(userTableName, RecordId(userId1)).length === 2
+      fileNames(dbPath).contains("db.lock") === false
+
+      fs.close()
+
+      success
+    }
+  }
+
   private def fileNames(path: Path): List[String] =
     Files
       .list(path)